@@ -0,0 +1,121 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo;
+
+import com.google.common.collect.ImmutableListMultimap;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import oteldemo.AdCategoryLookup.TracingMode;
+import oteldemo.Demo.Ad;
+import oteldemo.catalog.MultimapAdCatalog;
+
+/**
+ * Measures the per-request tracing cost of a targeted ad request in each {@link TracingMode}, for
+ * a sampled and an unsampled request span. Spans are ended into a processor that discards them, so
+ * the results cover span creation and attribute computation but not export.
+ *
+ * <p>Run with {@code ./gradlew jmh -PjmhIncludes=TracingBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TracingBenchmark {
+
+  private static final String SESSION_ID = "00000000-0000-0000-0000-000000000000";
+  private static final List<String> CONTEXT_KEYS =
+      List.of("binoculars", "telescopes", "accessories");
+
+  @Param({"detailed", "lean"})
+  public String tracingMode;
+
+  @Param({"true", "false"})
+  public boolean sampled;
+
+  private SdkTracerProvider tracerProvider;
+  private Tracer tracer;
+  private AdCategoryLookup lookup;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(sampled ? Sampler.alwaysOn() : Sampler.alwaysOff())
+            .addSpanProcessor(SimpleSpanProcessor.create(new DiscardingSpanExporter()))
+            .build();
+    tracer = tracerProvider.get("ad");
+
+    Ad ad =
+        Ad.newBuilder().setRedirectUrl("/product/66VCHSJNUP").setText("Telescope for sale").build();
+    MultimapAdCatalog catalog =
+        new MultimapAdCatalog(
+            ImmutableListMultimap.<String, Ad>builder()
+                .putAll("binoculars", ad)
+                .putAll("telescopes", ad)
+                .putAll("accessories", ad, ad, ad)
+                .build());
+    lookup =
+        new AdCategoryLookup(
+            catalog, tracer, TracingMode.valueOf(tracingMode.toUpperCase(Locale.ROOT)));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
+  /** Traces a targeted request with the same span code as {@code AdService.getAds}. */
+  @Benchmark
+  public List<Ad> targetedRequest() {
+    Span span =
+        tracer.spanBuilder("oteldemo.AdService/GetAds").setSpanKind(SpanKind.SERVER).startSpan();
+    try (io.opentelemetry.context.Scope ignored = span.makeCurrent()) {
+      AdRequestSpan.setRequestAttributes(span, SESSION_ID, CONTEXT_KEYS);
+      List<Ad> ads = lookup.lookup(CONTEXT_KEYS, () -> {});
+      AdRequestSpan.setResponseAttributes(span, ads.size(), "TARGETED", "TARGETED");
+      return ads;
+    } finally {
+      span.end();
+    }
+  }
+
+  private static final class DiscardingSpanExporter implements SpanExporter {
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+      return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+      return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+      return CompletableResultCode.ofSuccess();
+    }
+  }
+}
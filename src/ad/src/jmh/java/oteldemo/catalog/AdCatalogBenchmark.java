@@ -0,0 +1,238 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.catalog;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import oteldemo.Demo.Ad;
+
+/**
+ * Compares the on-heap {@link MultimapAdCatalog} with the {@link OffHeapAdCatalog} for large
+ * inventories.
+ *
+ * <ul>
+ *   <li>Heap footprint: {@link #lookupCategory} reports the heap and off-heap memory retained by
+ *       the loaded catalog as the {@code retainedHeapMiB} and {@code offHeapMiB} secondary results.
+ *   <li>Lookup latency: {@link #lookupCategory} and {@link #randomAds}.
+ *   <li>GC impact: {@link #serveUnderAllocationPressure} allocates short-lived request garbage next
+ *       to the catalog, {@link #servePromotingAllocations} additionally keeps a window of served
+ *       responses alive long enough to be promoted, so old generation collections have to deal
+ *       with the catalog. Both report the GC pauses of each iteration as the {@code gcPauses},
+ *       {@code gcPauseTotalMs} and {@code gcPauseMaxMs} secondary results.
+ * </ul>
+ *
+ * <p>Run with {@code ./gradlew jmh -PjmhIncludes=AdCatalogBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AdCatalogBenchmark {
+
+  private static final int ADS_PER_CATEGORY = 100;
+
+  @Param({"1000000"})
+  public int ads;
+
+  @Param({"heap", "offheap"})
+  public String backend;
+
+  private Path inventory;
+  private AdCatalog catalog;
+  private String[] categories;
+  private long retainedHeapBytes;
+  private long offHeapBytes;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    categories = new String[Math.max(1, ads / ADS_PER_CATEGORY)];
+    for (int i = 0; i < categories.length; i++) {
+      categories[i] = "category-" + i;
+    }
+    inventory = Files.createTempFile("ad-inventory", ".tsv");
+    try (BufferedWriter writer = Files.newBufferedWriter(inventory, StandardCharsets.UTF_8)) {
+      for (int i = 0; i < ads; i++) {
+        writer.write(categories[i % categories.length]);
+        writer.write(String.format("\t/product/%010d\t", i));
+        writer.write("Synthetic telescope accessory number " + i + " for sale. " + i % 90 + "% off.");
+        writer.newLine();
+      }
+    }
+
+    long heapBefore = usedHeapAfterGc();
+    catalog =
+        "offheap".equals(backend)
+            ? OffHeapAdCatalog.load(inventory)
+            : MultimapAdCatalog.load(inventory);
+    retainedHeapBytes = usedHeapAfterGc() - heapBefore;
+    offHeapBytes =
+        catalog instanceof OffHeapAdCatalog ? ((OffHeapAdCatalog) catalog).getArenaSize() : 0;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(inventory);
+  }
+
+  private static long usedHeapAfterGc() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /** Per-thread source of randomness, so that threads do not contend on a shared {@link Random}. */
+  @State(Scope.Thread)
+  public static class Requests {
+    final Random random = new Random(42);
+  }
+
+  /** Memory retained by the catalog, measured once when the trial starts. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Footprint {
+    public long retainedHeapMiB;
+    public long offHeapMiB;
+
+    @Setup(Level.Iteration)
+    public void setUp(AdCatalogBenchmark benchmark) {
+      retainedHeapMiB = benchmark.retainedHeapBytes >> 20;
+      offHeapMiB = benchmark.offHeapBytes >> 20;
+    }
+  }
+
+  /** Collects the GC pauses of an iteration from the GC notifications of the JVM. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class GcPauses implements NotificationListener {
+    public long gcPauses;
+    public double gcPauseTotalMs;
+    public double gcPauseMaxMs;
+
+    private long pauses;
+    private long totalMillis;
+    private long maxMillis;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+      gcPauses = 0;
+      gcPauseTotalMs = 0;
+      gcPauseMaxMs = 0;
+      synchronized (this) {
+        pauses = 0;
+        totalMillis = 0;
+        maxMillis = 0;
+      }
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        // ZGC and Shenandoah also report their concurrent cycles, which are not pauses
+        if (!gc.getName().endsWith("Cycles")) {
+          ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+        }
+      }
+    }
+
+    @Override
+    public synchronized void handleNotification(Notification notification, Object handback) {
+      if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(
+          notification.getType())) {
+        return;
+      }
+      long durationMillis =
+          GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+              .getGcInfo()
+              .getDuration();
+      pauses++;
+      totalMillis += durationMillis;
+      maxMillis = Math.max(maxMillis, durationMillis);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws ListenerNotFoundException {
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        if (!gc.getName().endsWith("Cycles")) {
+          ((NotificationEmitter) gc).removeNotificationListener(this);
+        }
+      }
+      synchronized (this) {
+        gcPauses = pauses;
+        gcPauseTotalMs = totalMillis;
+        gcPauseMaxMs = maxMillis;
+      }
+    }
+  }
+
+  /**
+   * A window of served responses that outlives several young collections, so that they are
+   * promoted and later have to be collected from the old generation.
+   */
+  @State(Scope.Thread)
+  public static class RetainedResponses {
+    // about 200 MiB of live request data next to the catalog
+    private static final int RETAINED_RESPONSES = 200_000;
+
+    final Object[] responses = new Object[RETAINED_RESPONSES];
+    int next;
+  }
+
+  @Benchmark
+  public List<Ad> lookupCategory(Requests requests, Footprint footprint) {
+    return catalog.getAdsByCategory(categories[requests.random.nextInt(categories.length)]);
+  }
+
+  @Benchmark
+  public void randomAds(Requests requests, Blackhole blackhole) {
+    // the ad service serves two random ads per untargeted request
+    blackhole.consume(catalog.getRandomAd(requests.random));
+    blackhole.consume(catalog.getRandomAd(requests.random));
+  }
+
+  @Benchmark
+  public void serveUnderAllocationPressure(
+      Requests requests, GcPauses gcPauses, Blackhole blackhole) {
+    List<Ad> served =
+        catalog.getAdsByCategory(categories[requests.random.nextInt(categories.length)]);
+    blackhole.consume(served.get(0).toByteArray());
+    // stands in for the request and response garbage of a real ad request
+    blackhole.consume(new byte[16 * 1024]);
+  }
+
+  @Benchmark
+  public void servePromotingAllocations(
+      Requests requests, RetainedResponses retained, GcPauses gcPauses, Blackhole blackhole) {
+    List<Ad> served =
+        catalog.getAdsByCategory(categories[requests.random.nextInt(categories.length)]);
+    blackhole.consume(new byte[16 * 1024]);
+    // keep one served ad and some request state alive until the window wraps around
+    retained.responses[retained.next] =
+        new Object[] {served.get(requests.random.nextInt(served.size())), new byte[1024]};
+    retained.next = (retained.next + 1) % retained.responses.length;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.impression;
+
+import com.google.common.collect.ImmutableListMultimap;
+import io.opentelemetry.api.OpenTelemetry;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import oteldemo.Demo.Ad;
+import oteldemo.catalog.AdCatalog;
+import oteldemo.catalog.MultimapAdCatalog;
+import oteldemo.catalog.OffHeapAdCatalog;
+
+/**
+ * Measures the request-thread cost of publishing ad impressions from several request threads at
+ * once, for ads served by either catalog backend.
+ *
+ * <ul>
+ *   <li>{@link #lookup} is the baseline: it only looks up the served ads.
+ *   <li>{@link #publishToRingBuffer} publishes into an {@link ImpressionRingBuffer} that a
+ *       consumer thread drains as fast as it can, so nearly every impression takes the publish
+ *       path.
+ *   <li>{@link #publishToPipeline} publishes into an {@link ImpressionPipeline} that writes its
+ *       batches to a sink discarding them. Once producers outpace the consumer, impressions are
+ *       dropped; the {@code published} and {@code dropped} secondary results tell both apart.
+ * </ul>
+ *
+ * <p>Run with {@code ./gradlew jmh -PjmhIncludes=ImpressionPublishBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class ImpressionPublishBenchmark {
+
+  private static final String SESSION_ID = "00000000-0000-0000-0000-000000000000";
+  private static final String CATEGORY = "telescopes";
+
+  @Param({"heap", "offheap"})
+  public String backend;
+
+  private AdCatalog catalog;
+  private ImpressionRingBuffer ringBuffer;
+  private ImpressionPipeline pipeline;
+  private Thread ringBufferConsumer;
+  private volatile boolean running;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    ImmutableListMultimap.Builder<String, Ad> ads = ImmutableListMultimap.builder();
+    for (int i = 0; i < ImpressionRingBuffer.MAX_ADS_PER_EVENT; i++) {
+      ads.put(
+          CATEGORY,
+          Ad.newBuilder()
+              .setRedirectUrl(String.format("/product/%010d", i))
+              .setText("Telescope number " + i + " for sale")
+              .build());
+    }
+    // off-heap ads are materialized on every lookup, as in the ad service
+    catalog =
+        "offheap".equals(backend)
+            ? OffHeapAdCatalog.copyOf(ads.build())
+            : new MultimapAdCatalog(ads.build());
+
+    running = true;
+    ringBuffer = new ImpressionRingBuffer(64 * 1024);
+    ringBufferConsumer =
+        new Thread(
+            () -> {
+              while (running) {
+                if (ringBuffer.drain(event -> {}, 1024) == 0) {
+                  Thread.onSpinWait();
+                }
+              }
+            },
+            "ring-buffer-consumer");
+    ringBufferConsumer.start();
+
+    pipeline =
+        new ImpressionPipeline(
+            new DiscardingSink(), 64 * 1024, 512, 1000, OpenTelemetry.noop().getMeter("ad"));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    running = false;
+    ringBufferConsumer.join();
+    pipeline.close(TimeUnit.SECONDS.toMillis(10));
+  }
+
+  /** Outcome of the publish calls of one thread. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Outcomes {
+    public long published;
+    public long dropped;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      published = 0;
+      dropped = 0;
+    }
+
+    void record(boolean accepted) {
+      if (accepted) {
+        published++;
+      } else {
+        dropped++;
+      }
+    }
+  }
+
+  @Benchmark
+  public List<Ad> lookup() {
+    return catalog.getAdsByCategory(CATEGORY);
+  }
+
+  @Benchmark
+  public void publishToRingBuffer(Outcomes outcomes) {
+    outcomes.record(
+        ringBuffer.tryPublish(SESSION_ID, "TARGETED", catalog.getAdsByCategory(CATEGORY)));
+  }
+
+  @Benchmark
+  public void publishToPipeline(Outcomes outcomes) {
+    outcomes.record(pipeline.publish(SESSION_ID, "TARGETED", catalog.getAdsByCategory(CATEGORY)));
+  }
+
+  private static final class DiscardingSink implements ImpressionSink {
+    @Override
+    public void write(byte[] batch, int eventCount) {}
+
+    @Override
+    public void close() {}
+  }
+}
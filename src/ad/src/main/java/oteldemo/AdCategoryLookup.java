@@ -0,0 +1,102 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import java.util.ArrayList;
+import java.util.List;
+import oteldemo.Demo.Ad;
+import oteldemo.catalog.AdCatalog;
+
+/** Looks up the ads of the categories of a targeted ad request, and traces the lookup. */
+final class AdCategoryLookup {
+
+  /** How much detail the lookup records in traces. */
+  enum TracingMode {
+    /** One {@code getAdsByCategory} span per looked up category. */
+    DETAILED,
+    /** A single {@code getAdsByCategories} span with aggregated attributes for all categories. */
+    LEAN
+  }
+
+  private static final AttributeKey<String> categoryKey = AttributeKey.stringKey("app.ads.category");
+  private static final AttributeKey<List<String>> categoriesKey =
+      AttributeKey.stringArrayKey("app.ads.categories");
+  private static final AttributeKey<Long> matchedCategoriesKey =
+      AttributeKey.longKey("app.ads.categories.matched");
+  private static final AttributeKey<Long> countKey = AttributeKey.longKey("app.ads.count");
+
+  private final AdCatalog catalog;
+  private final Tracer tracer;
+  private final TracingMode tracingMode;
+
+  AdCategoryLookup(AdCatalog catalog, Tracer tracer, TracingMode tracingMode) {
+    this.catalog = catalog;
+    this.tracer = tracer;
+    this.tracingMode = tracingMode;
+  }
+
+  /**
+   * Looks up the ads of all given categories. Span attributes are only computed for spans that are
+   * recorded.
+   *
+   * @param categories the categories to look up.
+   * @param betweenCategories runs before every category but the first, e.g. to abort the lookup
+   *     once the caller has given up.
+   * @return the ads of all categories, in category order.
+   */
+  List<Ad> lookup(List<String> categories, Runnable betweenCategories) {
+    List<Ad> ads = new ArrayList<>();
+    if (tracingMode == TracingMode.DETAILED) {
+      for (int i = 0; i < categories.size(); i++) {
+        if (i > 0) {
+          betweenCategories.run();
+        }
+        ads.addAll(lookupTraced(categories.get(i)));
+      }
+      return ads;
+    }
+
+    Span span = tracer.spanBuilder("getAdsByCategories").startSpan();
+    try {
+      int matchedCategories = 0;
+      for (int i = 0; i < categories.size(); i++) {
+        if (i > 0) {
+          betweenCategories.run();
+        }
+        List<Ad> categoryAds = catalog.getAdsByCategory(categories.get(i));
+        if (!categoryAds.isEmpty()) {
+          matchedCategories++;
+          ads.addAll(categoryAds);
+        }
+      }
+      if (span.isRecording()) {
+        span.setAttribute(categoriesKey, categories);
+        span.setAttribute(matchedCategoriesKey, matchedCategories);
+        span.setAttribute(countKey, ads.size());
+      }
+    } finally {
+      span.end();
+    }
+    return ads;
+  }
+
+  private List<Ad> lookupTraced(String category) {
+    Span span = tracer.spanBuilder("getAdsByCategory").startSpan();
+    try {
+      List<Ad> ads = catalog.getAdsByCategory(category);
+      if (span.isRecording()) {
+        span.setAttribute(categoryKey, category);
+        span.setAttribute(countKey, ads.size());
+      }
+      return ads;
+    } finally {
+      span.end();
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import java.util.List;
+
+/**
+ * Sets the attributes of the server span of an ad request. Attributes are only computed for spans
+ * that are recorded.
+ */
+final class AdRequestSpan {
+
+  private static final AttributeKey<String> sessionIdKey = AttributeKey.stringKey("session.id");
+  private static final AttributeKey<String> contextKeysKey =
+      AttributeKey.stringKey("app.ads.contextKeys");
+  private static final AttributeKey<Long> contextKeysCountKey =
+      AttributeKey.longKey("app.ads.contextKeys.count");
+  private static final AttributeKey<Long> countKey = AttributeKey.longKey("app.ads.count");
+  private static final AttributeKey<String> requestTypeKey =
+      AttributeKey.stringKey("app.ads.ad_request_type");
+  private static final AttributeKey<String> responseTypeKey =
+      AttributeKey.stringKey("app.ads.ad_response_type");
+
+  private AdRequestSpan() {}
+
+  /**
+   * Records what was requested.
+   *
+   * @param sessionId the session from the request baggage, may be {@code null}.
+   * @param contextKeys the categories of a targeted request, empty for a random request.
+   */
+  static void setRequestAttributes(Span span, String sessionId, List<String> contextKeys) {
+    if (!span.isRecording()) {
+      return;
+    }
+    if (sessionId != null) {
+      span.setAttribute(sessionIdKey, sessionId);
+    }
+    span.setAttribute(contextKeysKey, contextKeys.toString());
+    span.setAttribute(contextKeysCountKey, contextKeys.size());
+  }
+
+  /** Records what was served. */
+  static void setResponseAttributes(
+      Span span, int adCount, String requestType, String responseType) {
+    if (!span.isRecording()) {
+      return;
+    }
+    span.setAttribute(countKey, adCount);
+    span.setAttribute(requestTypeKey, requestType);
+    span.setAttribute(responseTypeKey, responseType);
+  }
+}
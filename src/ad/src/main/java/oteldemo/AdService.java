@@ -6,37 +6,56 @@
 package oteldemo;
 
 import com.google.common.collect.ImmutableListMultimap;
-import com.google.common.collect.Iterables;
 import io.grpc.*;
 import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
 import io.grpc.protobuf.services.*;
+import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 import io.opentelemetry.api.GlobalOpenTelemetry;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.baggage.Baggage;
 import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
 import io.opentelemetry.api.metrics.LongCounter;
 import io.opentelemetry.api.metrics.Meter;
 import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
 import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.context.Scope;
-import io.opentelemetry.instrumentation.annotations.SpanAttribute;
-import io.opentelemetry.instrumentation.annotations.WithSpan;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import sun.misc.Signal;
 import oteldemo.Demo.Ad;
 import oteldemo.Demo.AdRequest;
+import oteldemo.AdCategoryLookup.TracingMode;
 import oteldemo.Demo.AdResponse;
+import oteldemo.catalog.AdCatalog;
+import oteldemo.catalog.MultimapAdCatalog;
+import oteldemo.catalog.OffHeapAdCatalog;
+import oteldemo.impression.ImpressionPipeline;
+import oteldemo.impression.ImpressionSink;
+import oteldemo.impression.KafkaImpressionSink;
+import oteldemo.impression.RollingFileImpressionSink;
 import oteldemo.problempattern.GarbageCollectionTrigger;
 import oteldemo.problempattern.CPULoad;
 import dev.openfeature.contrib.providers.flagd.FlagdOptions;
@@ -57,6 +76,8 @@ public final class AdService {
 
   private Server server;
   private HealthStatusManager healthMgr;
+  private ImpressionPipeline impressionPipeline;
+  private final InFlightCallTracker inFlightCalls = new InFlightCallTracker();
 
   private static final AdService service = new AdService();
   private static final Tracer tracer = GlobalOpenTelemetry.getTracer("ad");
@@ -73,6 +94,74 @@ public final class AdService {
   private static final AttributeKey<String> adResponseTypeKey =
       AttributeKey.stringKey("app.ads.ad_response_type");
 
+  private static final LongCounter abortedRequestsCounter =
+      meter
+          .counterBuilder("app.ads.aborted_requests")
+          .setDescription(
+              "Counts ad requests abandoned early because the caller cancelled them or their deadline"
+                  + " expired, by the stage at which the remaining work was skipped")
+          .build();
+
+  private static final AttributeKey<String> abortReasonKey =
+      AttributeKey.stringKey("app.ads.abort_reason");
+  private static final AttributeKey<String> abortStageKey =
+      AttributeKey.stringKey("app.ads.abort_stage");
+
+  private static final LongCounter shutdownCallsCounter =
+      meter
+          .counterBuilder("app.ads.shutdown.calls")
+          .setDescription(
+              "Counts ad requests in flight when the server stopped accepting calls, by whether they"
+                  + " completed before the drain timeout")
+          .build();
+
+  private static final AttributeKey<String> shutdownResultKey =
+      AttributeKey.stringKey("app.ads.shutdown.result");
+
+  private static final DoubleHistogram startupDuration =
+      meter
+          .histogramBuilder("app.ads.startup.duration")
+          .setDescription("Time from JVM start until the given startup phase was reached")
+          .setUnit("s")
+          .build();
+
+  private static final AttributeKey<String> startupPhaseKey =
+      AttributeKey.stringKey("app.ads.startup.phase");
+
+  // Number of getAds calls issued against the local server before reporting SERVING.
+  private static final int WARMUP_REQUESTS = getEnvInt("AD_WARMUP_REQUESTS", 50);
+  // Training runs (see the trainCds gradle task) only warm up and exit to dump the AppCDS archive.
+  private static final boolean CDS_TRAINING =
+      Boolean.parseBoolean(System.getenv("AD_CDS_TRAINING"));
+
+  // DETAILED records one span per looked up category, LEAN a single span for all categories.
+  private static final TracingMode TRACING_MODE =
+      TracingMode.valueOf(
+          Optional.ofNullable(System.getenv("AD_TRACING_MODE"))
+              .orElse("detailed")
+              .toUpperCase(Locale.ROOT));
+
+  // Time given to load balancers to notice NOT_SERVING before the server stops accepting calls.
+  private static final int SHUTDOWN_PROPAGATION_DELAY_MS =
+      getEnvInt("AD_SHUTDOWN_PROPAGATION_DELAY_MS", 2000);
+  // Time given to in-flight calls to complete before they are cancelled.
+  private static final int SHUTDOWN_DRAIN_TIMEOUT_MS = getEnvInt("AD_SHUTDOWN_DRAIN_TIMEOUT_MS", 5000);
+
+  // Set by the warmup requests, honored only for loopback peers until the instance reports SERVING.
+  private static final Metadata.Key<String> WARMUP_HEADER =
+      Metadata.Key.of("x-ad-warmup", Metadata.ASCII_STRING_MARSHALLER);
+  private static final io.grpc.Context.Key<Boolean> WARMUP_CALL =
+      io.grpc.Context.keyWithDefault("ad-warmup", false);
+  private static final String WARMUP_TRACE_ID = "00000000000000000000000000000001";
+  private static final String WARMUP_SPAN_ID = "0000000000000001";
+
+  private final AtomicBoolean serving = new AtomicBoolean(false);
+  private final AtomicBoolean stopping = new AtomicBoolean(false);
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  // set by the SIGTERM handler, read by main() once the server has stopped
+  private volatile int exitStatus = 0;
+  private final AtomicBoolean firstRpcServed = new AtomicBoolean(false);
+
   private void start() throws IOException {
     int port =
         Integer.parseInt(
@@ -82,6 +171,9 @@ public final class AdService {
                         new IllegalStateException(
                             "environment vars: AD_PORT must not be null")));
     healthMgr = new HealthStatusManager();
+    // A new HealthStatusManager reports the server as SERVING, keep it out of rotation until the
+    // warmup has finished.
+    healthMgr.setStatus("", ServingStatus.NOT_SERVING);
 
     // Create a flagd instance with OpenTelemetry
     FlagdOptions options =
@@ -92,14 +184,34 @@ public final class AdService {
     FlagdProvider flagdProvider = new FlagdProvider(options);
     // Set flagd as the OpenFeature Provider
     OpenFeatureAPI.getInstance().setProvider(flagdProvider);
+
+    impressionPipeline = createImpressionPipeline();
   
     server =
         ServerBuilder.forPort(port)
-            .addService(new AdServiceImpl())
+            .addService(
+                ServerInterceptors.intercept(new AdServiceImpl(), inFlightCalls, markWarmupCalls()))
             .addService(healthMgr.getHealthService())
             .build()
             .start();
+    meter
+        .gaugeBuilder("app.ads.inflight_requests")
+        .setDescription("Number of ad requests currently being processed")
+        .ofLongs()
+        .buildWithCallback(measurement -> measurement.record(inFlightCalls.getInFlight()));
     logger.info("Ad service started, listening on " + port);
+    // The javaagent closes the OpenTelemetry SDK in its own shutdown hook, which the JVM runs
+    // concurrently with ours. Drain on SIGTERM before the JVM starts shutting down, so that the
+    // spans of the drained calls and the drain metrics are still exported.
+    Signal.handle(
+        new Signal("TERM"),
+        signal -> {
+          // Only drain here: the handler runs on a daemon thread, so main() owns the exit.
+          System.err.println("*** draining gRPC ads server since SIGTERM was received");
+          exitStatus = 128 + signal.getNumber();
+          AdService.this.stop();
+        });
+    // Other exit paths, e.g. SIGINT, still drain, but only the stderr log of the drain is reliable.
     Runtime.getRuntime()
         .addShutdownHook(
             new Thread(
@@ -108,16 +220,201 @@ public final class AdService {
                   System.err.println(
                       "*** shutting down gRPC ads server since JVM is shutting down");
                   AdService.this.stop();
-                  System.err.println("*** server shut down");
                 }));
+    warmUp(server.getPort(), CDS_TRAINING ? Math.max(WARMUP_REQUESTS, 500) : WARMUP_REQUESTS);
     healthMgr.setStatus("", ServingStatus.SERVING);
+    serving.set(true);
+    recordStartupPhase("serving");
+  }
+
+  /**
+   * Issues {@code requests} ad requests against the local server so that classes are loaded and
+   * the hot paths are JIT-compiled before the instance reports SERVING. The requests are marked as
+   * warmup calls, which skip metrics, logging and the problem patterns, and run in an unsampled
+   * trace so that they are not exported.
+   */
+  private void warmUp(int port, int requests) {
+    if (requests <= 0) {
+      return;
+    }
+    long start = System.nanoTime();
+    ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", port).usePlaintext().build();
+    // A valid but unsampled parent keeps the warmup calls out of traces.
+    SpanContext unsampled =
+        SpanContext.create(
+            WARMUP_TRACE_ID, WARMUP_SPAN_ID, TraceFlags.getDefault(), TraceState.getDefault());
+    try (Scope ignored = Context.root().with(Span.wrap(unsampled)).makeCurrent()) {
+      Metadata headers = new Metadata();
+      headers.put(WARMUP_HEADER, "true");
+      AdServiceGrpc.AdServiceBlockingStub stub =
+          AdServiceGrpc.newBlockingStub(channel)
+              .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+      List<String> categories = new ArrayList<>(adCatalog.getCategories());
+      categories.add("books");
+      for (int i = 0; i < requests; i++) {
+        AdRequest.Builder request = AdRequest.newBuilder();
+        // alternate between targeted and random requests to exercise both code paths
+        if (i % 2 == 0) {
+          request.addContextKeys(categories.get(i / 2 % categories.size()));
+        }
+        try {
+          stub.withDeadlineAfter(5, TimeUnit.SECONDS).getAds(request.build());
+        } catch (StatusRuntimeException e) {
+          logger.debug("Warmup request failed with status {}", e.getStatus());
+        }
+      }
+    } finally {
+      channel.shutdownNow();
+    }
+    logger.info(
+        "Warmup finished after {} requests in {} ms",
+        requests,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
   }
 
+  /** Marks calls carrying the warmup header as warmup calls while the instance is not serving. */
+  private static boolean isLoopback(SocketAddress address) {
+    return address instanceof InetSocketAddress
+        && ((InetSocketAddress) address).getAddress() != null
+        && ((InetSocketAddress) address).getAddress().isLoopbackAddress();
+  }
+
+  private ServerInterceptor markWarmupCalls() {
+    return new ServerInterceptor() {
+      @Override
+      public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+          ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        // only the service itself may mark its calls as warmup, and only before it is serving
+        if (serving.get()
+            || !headers.containsKey(WARMUP_HEADER)
+            || !isLoopback(call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR))) {
+          return next.startCall(call, headers);
+        }
+        return Contexts.interceptCall(
+            io.grpc.Context.current().withValue(WARMUP_CALL, true), call, headers, next);
+      }
+    };
+  }
+
+  /** Records the time since JVM start at which the given startup phase was reached. */
+  private void recordStartupPhase(String phase) {
+    long uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+    logger.info("Startup phase {} reached {} ms after JVM start", phase, uptimeMillis);
+    startupDuration.record(uptimeMillis / 1000.0, Attributes.of(startupPhaseKey, phase));
+  }
+
+  /** Records the time to the first successful RPC served after the instance reported SERVING. */
+  private void onRpcSucceeded() {
+    if (serving.get() && firstRpcServed.compareAndSet(false, true)) {
+      recordStartupPhase("first_rpc");
+    }
+  }
+
+  /**
+   * Creates the pipeline recording served ads for the sink selected by {@code AD_IMPRESSION_SINK}:
+   * {@code file} (default) writes rolling files to {@code AD_IMPRESSION_DIR}, {@code kafka}
+   * publishes to the {@code ad-impressions} topic at {@code KAFKA_ADDR} and {@code none} disables
+   * impression recording.
+   */
+  private static ImpressionPipeline createImpressionPipeline() throws IOException {
+    ImpressionSinkType sinkType =
+        ImpressionSinkType.valueOf(
+            Optional.ofNullable(System.getenv("AD_IMPRESSION_SINK"))
+                .orElse("file")
+                .toUpperCase(Locale.ROOT));
+    ImpressionSink sink;
+    switch (sinkType) {
+      case NONE:
+        return null;
+      case KAFKA:
+        String kafkaAddr =
+            Optional.ofNullable(System.getenv("KAFKA_ADDR"))
+                .orElseThrow(
+                    () ->
+                        new IllegalStateException(
+                            "environment vars: KAFKA_ADDR must not be null when"
+                                + " AD_IMPRESSION_SINK is kafka"));
+        sink = new KafkaImpressionSink(kafkaAddr, "ad-impressions");
+        break;
+      default:
+        Path directory =
+            Path.of(
+                Optional.ofNullable(System.getenv("AD_IMPRESSION_DIR"))
+                    .orElse("/tmp/ad-impressions"));
+        sink = new RollingFileImpressionSink(directory, 64L * 1024 * 1024, 10);
+    }
+    logger.info("Recording ad impressions to the {} sink", sinkType.name().toLowerCase(Locale.ROOT));
+    return new ImpressionPipeline(
+        sink,
+        getEnvInt("AD_IMPRESSION_BUFFER_SIZE", 8192),
+        getEnvInt("AD_IMPRESSION_BATCH_SIZE", 512),
+        getEnvInt("AD_IMPRESSION_FLUSH_INTERVAL_MS", 1000),
+        meter);
+  }
+
+  /** Records which ads were served, once the instance serves real traffic. */
+  private void recordImpression(String sessionId, AdRequestType requestType, List<Ad> ads) {
+    if (impressionPipeline != null && serving.get()) {
+      impressionPipeline.publish(sessionId, requestType.name(), ads);
+    }
+  }
+
+  /**
+   * Drains the server: reports NOT_SERVING and waits for load balancers to pick that up, then stops
+   * accepting calls and waits for in-flight calls to complete before cancelling the remaining ones.
+   * Logs to stderr since the logger may have been reset by its JVM shutdown hook.
+   */
   private void stop() {
+    if (!stopping.compareAndSet(false, true)) {
+      return;
+    }
     if (server != null) {
-      healthMgr.clearStatus("");
+      healthMgr.setStatus("", ServingStatus.NOT_SERVING);
+      // training runs have no load balancer in front of them
+      if (!CDS_TRAINING) {
+        System.err.println(
+            "*** reported NOT_SERVING, waiting "
+                + SHUTDOWN_PROPAGATION_DELAY_MS
+                + " ms before refusing new calls");
+        sleepMillis(SHUTDOWN_PROPAGATION_DELAY_MS);
+      }
+
       server.shutdown();
+      // no call is admitted after shutdown() returned, so this is exactly the number to drain
+      int inFlight = inFlightCalls.getInFlight();
+      System.err.println("*** refusing new calls, draining " + inFlight + " in-flight calls");
+      boolean terminated = false;
+      try {
+        terminated = server.awaitTermination(SHUTDOWN_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      int abandoned = terminated ? 0 : inFlightCalls.getInFlight();
+      server.shutdownNow();
+      healthMgr.enterTerminalState();
+
+      int drained = inFlight - abandoned;
+      shutdownCallsCounter.add(drained, Attributes.of(shutdownResultKey, "drained"));
+      shutdownCallsCounter.add(abandoned, Attributes.of(shutdownResultKey, "abandoned"));
+      System.err.println(
+          "*** drained " + drained + " calls, cancelled " + abandoned + " calls after the timeout");
+    }
+    if (impressionPipeline != null) {
+      impressionPipeline.close(TimeUnit.SECONDS.toMillis(5));
     }
+    System.err.println("*** server shut down");
+    stopped.countDown();
+  }
+
+  private enum ImpressionSinkType {
+    FILE,
+    KAFKA,
+    NONE
+  }
+
+  private enum CatalogBackend {
+    HEAP,
+    OFFHEAP
   }
 
   private enum AdRequestType {
@@ -136,9 +433,60 @@ public final class AdService {
     private static final String AD_MANUAL_GC_FEATURE_FLAG = "adManualGc";
     private static final String AD_HIGH_CPU_FEATURE_FLAG = "adHighCpu";
     private static final Client ffClient = OpenFeatureAPI.getInstance().getClient();
+    // Requests arriving with less than this much time left before their deadline are rejected
+    // up front, since they would most likely expire while being processed.
+    private static final long MIN_DEADLINE_BUDGET_MS = getEnvInt("AD_MIN_DEADLINE_BUDGET_MS", 0);
     
     private AdServiceImpl() {}
 
+    /**
+     * Rejects the call if its remaining deadline budget is below {@code AD_MIN_DEADLINE_BUDGET_MS}.
+     */
+    private static void checkDeadlineBudget() {
+      if (MIN_DEADLINE_BUDGET_MS <= 0) {
+        return;
+      }
+      Deadline deadline = io.grpc.Context.current().getDeadline();
+      if (deadline != null && deadline.timeRemaining(TimeUnit.MILLISECONDS) < MIN_DEADLINE_BUDGET_MS) {
+        abort(
+            Status.DEADLINE_EXCEEDED.withDescription(
+                "remaining deadline budget is below " + MIN_DEADLINE_BUDGET_MS + " ms"),
+            "insufficient_budget",
+            "admission");
+      }
+    }
+
+    /**
+     * Aborts the call if the caller has already given up on it, so that no further work is spent
+     * on a response nobody is waiting for.
+     *
+     * @param stage the processing stage that is about to start.
+     */
+    private static void checkCallAlive(String stage) {
+      io.grpc.Context grpcContext = io.grpc.Context.current();
+      Deadline deadline = grpcContext.getDeadline();
+      if (deadline != null && deadline.isExpired()) {
+        abort(Status.DEADLINE_EXCEEDED, "deadline_exceeded", stage);
+      } else if (grpcContext.isCancelled()) {
+        abort(Status.CANCELLED.withDescription("call cancelled by client"), "cancelled", stage);
+      }
+    }
+
+    private static void abort(Status status, String reason, String stage) {
+      if (!WARMUP_CALL.get()) {
+        abortedRequestsCounter.add(
+            1, Attributes.of(abortReasonKey, reason, abortStageKey, stage));
+      }
+      throw new AbortedCallException(status);
+    }
+
+    /** Thrown when a call is shed or abandoned on purpose, as opposed to failing. */
+    private static final class AbortedCallException extends StatusRuntimeException {
+      AbortedCallException(Status status) {
+        super(status);
+      }
+    }
+
     /**
      * Retrieves ads based on context provided in the request {@code AdRequest}.
      *
@@ -152,37 +500,47 @@ public final class AdService {
 
       // get the current span in context
       Span span = Span.current();
+      boolean warmup = WARMUP_CALL.get();
       try {
+        checkCallAlive("admission");
+        checkDeadlineBudget();
+
         List<Ad> allAds = new ArrayList<>();
         AdRequestType adRequestType;
         AdResponseType adResponseType;
 
         Baggage baggage = Baggage.fromContextOrNull(Context.current());
         MutableContext evaluationContext = new MutableContext();
+        String sessionId = null;
         if (baggage != null) {
-          final String sessionId = baggage.getEntryValue("session.id");
-          span.setAttribute("session.id", sessionId);
+          sessionId = baggage.getEntryValue("session.id");
           evaluationContext.setTargetingKey(sessionId);
           evaluationContext.add("session", sessionId);
-        } else {
+        } else if (!warmup) {
           logger.info("no baggage found in context");
         }
 
-        CPULoad cpuload = CPULoad.getInstance();
-        cpuload.execute(ffClient.getBooleanValue(AD_HIGH_CPU_FEATURE_FLAG, false, evaluationContext));
+        if (!warmup) {
+          CPULoad cpuload = CPULoad.getInstance();
+          cpuload.execute(
+              ffClient.getBooleanValue(AD_HIGH_CPU_FEATURE_FLAG, false, evaluationContext));
+        }
+        checkCallAlive("category_lookup");
 
-        span.setAttribute("app.ads.contextKeys", req.getContextKeysList().toString());
-        span.setAttribute("app.ads.contextKeys.count", req.getContextKeysCount());
+        AdRequestSpan.setRequestAttributes(span, sessionId, req.getContextKeysList());
         if (req.getContextKeysCount() > 0) {
-          logger.info("Targeted ad request received for " + req.getContextKeysList());
-          for (int i = 0; i < req.getContextKeysCount(); i++) {
-            Collection<Ad> ads = service.getAdsByCategory(req.getContextKeys(i));
-            allAds.addAll(ads);
+          if (!warmup) {
+            logger.info("Targeted ad request received for " + req.getContextKeysList());
           }
+          allAds =
+              categoryLookup.lookup(
+                  req.getContextKeysList(), () -> checkCallAlive("category_lookup"));
           adRequestType = AdRequestType.TARGETED;
           adResponseType = AdResponseType.TARGETED;
         } else {
-          logger.info("Non-targeted ad request received, preparing random response.");
+          if (!warmup) {
+            logger.info("Non-targeted ad request received, preparing random response.");
+          }
           allAds = service.getRandomAds();
           adRequestType = AdRequestType.NOT_TARGETED;
           adResponseType = AdResponseType.RANDOM;
@@ -192,29 +550,42 @@ public final class AdService {
           allAds = service.getRandomAds();
           adResponseType = AdResponseType.RANDOM;
         }
-        span.setAttribute("app.ads.count", allAds.size());
-        span.setAttribute("app.ads.ad_request_type", adRequestType.name());
-        span.setAttribute("app.ads.ad_response_type", adResponseType.name());
-
-        adRequestsCounter.add(
-            1,
-            Attributes.of(
-                adRequestTypeKey, adRequestType.name(), adResponseTypeKey, adResponseType.name()));
-
-        // Throw 1/10 of the time to simulate a failure when the feature flag is enabled
-        if (ffClient.getBooleanValue(AD_FAILURE, false, evaluationContext) && random.nextInt(10) == 0) {
-          throw new StatusRuntimeException(Status.UNAVAILABLE);
-        }
+        AdRequestSpan.setResponseAttributes(
+            span, allAds.size(), adRequestType.name(), adResponseType.name());
+
+        if (!warmup) {
+          adRequestsCounter.add(
+              1,
+              Attributes.of(
+                  adRequestTypeKey, adRequestType.name(), adResponseTypeKey, adResponseType.name()));
+
+          // Throw 1/10 of the time to simulate a failure when the feature flag is enabled
+          if (ffClient.getBooleanValue(AD_FAILURE, false, evaluationContext) && random.nextInt(10) == 0) {
+            throw new StatusRuntimeException(Status.UNAVAILABLE);
+          }
 
-        if (ffClient.getBooleanValue(AD_MANUAL_GC_FEATURE_FLAG, false, evaluationContext)) {
-          logger.warn("Feature Flag " + AD_MANUAL_GC_FEATURE_FLAG + " enabled, performing a manual gc now");
-          GarbageCollectionTrigger gct = new GarbageCollectionTrigger();
-          gct.doExecute();
+          checkCallAlive("manual_gc");
+          if (ffClient.getBooleanValue(AD_MANUAL_GC_FEATURE_FLAG, false, evaluationContext)) {
+            logger.warn("Feature Flag " + AD_MANUAL_GC_FEATURE_FLAG + " enabled, performing a manual gc now");
+            GarbageCollectionTrigger gct = new GarbageCollectionTrigger();
+            gct.doExecute();
+          }
         }
 
+        checkCallAlive("response");
         AdResponse reply = AdResponse.newBuilder().addAllAds(allAds).build();
         responseObserver.onNext(reply);
         responseObserver.onCompleted();
+        service.onRpcSucceeded();
+        service.recordImpression(sessionId, adRequestType, allAds);
+      } catch (AbortedCallException e) {
+        // Expected under overload or client cancellation, so neither a warning nor a server error.
+        // Only an expired deadline marks the span, as the gRPC instrumentation would.
+        if (e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED) {
+          span.setStatus(StatusCode.ERROR, e.getStatus().getDescription());
+        }
+        logger.debug("GetAds aborted with status {}", e.getStatus());
+        responseObserver.onError(e);
       } catch (StatusRuntimeException e) {
         span.addEvent(
             "Error", Attributes.of(AttributeKey.stringKey("exception.message"), e.getMessage()));
@@ -225,14 +596,9 @@ public final class AdService {
     }
   }
 
-  private static final ImmutableListMultimap<String, Ad> adsMap = createAdsMap();
-
-  @WithSpan("getAdsByCategory")
-  private Collection<Ad> getAdsByCategory(@SpanAttribute("app.ads.category") String category) {
-    Collection<Ad> ads = adsMap.get(category);
-    Span.current().setAttribute("app.ads.count", ads.size());
-    return ads;
-  }
+  private static final AdCatalog adCatalog = createAdCatalog();
+  private static final AdCategoryLookup categoryLookup =
+      new AdCategoryLookup(adCatalog, tracer, TRACING_MODE);
 
   private static final Random random = new Random();
 
@@ -246,11 +612,12 @@ public final class AdService {
     // put the span into context, so if any child span is started the parent will be set properly
     try (Scope ignored = span.makeCurrent()) {
 
-      Collection<Ad> allAds = adsMap.values();
       for (int i = 0; i < MAX_ADS_TO_SERVE; i++) {
-        ads.add(Iterables.get(allAds, random.nextInt(allAds.size())));
+        ads.add(adCatalog.getRandomAd(random));
+      }
+      if (span.isRecording()) {
+        span.setAttribute("app.ads.count", ads.size());
       }
-      span.setAttribute("app.ads.count", ads.size());
 
     } finally {
       span.end();
@@ -259,6 +626,18 @@ public final class AdService {
     return ads;
   }
 
+  private static void sleepMillis(long millis) {
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static int getEnvInt(String name, int defaultValue) {
+    return Optional.ofNullable(System.getenv(name)).map(Integer::parseInt).orElse(defaultValue);
+  }
+
   private static AdService getInstance() {
     return service;
   }
@@ -267,9 +646,48 @@ public final class AdService {
   private void blockUntilShutdown() throws InterruptedException {
     if (server != null) {
       server.awaitTermination();
+      // the server terminates halfway through stop(), wait for the drain to be recorded
+      stopped.await();
     }
   }
 
+  /**
+   * Creates the ad catalog in the backend selected by {@code AD_CATALOG_BACKEND}: {@code heap}
+   * (default) keeps the ads as protobuf messages, {@code offheap} stores them in a direct buffer.
+   * The ads are read from the inventory file at {@code AD_CATALOG_FILE} if set, and default to the
+   * built-in ads otherwise.
+   */
+  private static AdCatalog createAdCatalog() {
+    CatalogBackend backend =
+        CatalogBackend.valueOf(
+            Optional.ofNullable(System.getenv("AD_CATALOG_BACKEND"))
+                .orElse("heap")
+                .toUpperCase(Locale.ROOT));
+    Optional<Path> catalogFile = Optional.ofNullable(System.getenv("AD_CATALOG_FILE")).map(Path::of);
+    if (catalogFile.isPresent()) {
+      try {
+        AdCatalog catalog =
+            backend == CatalogBackend.OFFHEAP
+                ? OffHeapAdCatalog.load(catalogFile.get())
+                : MultimapAdCatalog.load(catalogFile.get());
+        logger.info("Loaded {} ads from {}", catalog.size(), catalogFile.get());
+        return catalog;
+      } catch (IOException e) {
+        throw new UncheckedIOException("failed to load ad catalog " + catalogFile.get(), e);
+      }
+    }
+    ImmutableListMultimap<String, Ad> adsMap = createAdsMap();
+    if (backend == CatalogBackend.OFFHEAP) {
+      OffHeapAdCatalog catalog = OffHeapAdCatalog.copyOf(adsMap);
+      logger.info(
+          "Loaded {} ads into the off-heap catalog, using {} bytes",
+          catalog.size(),
+          catalog.getArenaSize());
+      return catalog;
+    }
+    return new MultimapAdCatalog(adsMap);
+  }
+
   private static ImmutableListMultimap<String, Ad> createAdsMap() {
     Ad binoculars =
         Ad.newBuilder()
@@ -323,6 +741,11 @@ public final class AdService {
     logger.info("Ad service starting.");
     final AdService service = AdService.getInstance();
     service.start();
+    if (CDS_TRAINING) {
+      logger.info("AppCDS training run finished, exiting.");
+      System.exit(0);
+    }
     service.blockUntilShutdown();
+    System.exit(service.exitStatus);
   }
 }
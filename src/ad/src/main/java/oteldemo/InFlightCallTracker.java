@@ -0,0 +1,65 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo;
+
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Server interceptor keeping track of the number of calls that have started but not finished. */
+final class InFlightCallTracker implements ServerInterceptor {
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    inFlight.incrementAndGet();
+    AtomicBoolean finished = new AtomicBoolean(false);
+    Runnable release =
+        () -> {
+          if (finished.compareAndSet(false, true)) {
+            inFlight.decrementAndGet();
+          }
+        };
+
+    ServerCall.Listener<ReqT> listener;
+    try {
+      listener = next.startCall(call, headers);
+    } catch (RuntimeException e) {
+      release.run();
+      throw e;
+    }
+    return new SimpleForwardingServerCallListener<ReqT>(listener) {
+      @Override
+      public void onComplete() {
+        try {
+          super.onComplete();
+        } finally {
+          release.run();
+        }
+      }
+
+      @Override
+      public void onCancel() {
+        try {
+          super.onCancel();
+        } finally {
+          release.run();
+        }
+      }
+    };
+  }
+
+  /** @return the number of calls currently being processed. */
+  int getInFlight() {
+    return inFlight.get();
+  }
+}
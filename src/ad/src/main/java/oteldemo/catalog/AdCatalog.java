@@ -0,0 +1,33 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.catalog;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import oteldemo.Demo.Ad;
+
+/** Read-only store of the ads the Ad service can serve, grouped by category. */
+public interface AdCatalog {
+
+  /**
+   * @param category the category to look up.
+   * @return the ads of the given category, or an empty list if the category is unknown.
+   */
+  List<Ad> getAdsByCategory(String category);
+
+  /**
+   * @param random the source of randomness to use.
+   * @return an ad picked uniformly at random from the whole catalog.
+   */
+  Ad getRandomAd(Random random);
+
+  /** @return the categories that have at least one ad. */
+  Set<String> getCategories();
+
+  /** @return the number of ads in the catalog. */
+  int size();
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.catalog;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads ad inventories from UTF-8 files with one ad per line, holding the category, redirect URL
+ * and text of the ad separated by tabs. Empty lines and lines starting with {@code #} are skipped.
+ * The file is streamed, so that catalogs can be filled without holding the inventory on-heap.
+ */
+public final class AdCatalogFile {
+
+  /** Receives the ads read from an inventory file. */
+  @FunctionalInterface
+  public interface AdConsumer {
+    void accept(String category, String redirectUrl, String text);
+  }
+
+  private AdCatalogFile() {}
+
+  /**
+   * Hands every ad of the given file to {@code consumer}, in file order.
+   *
+   * @throws IOException if the file cannot be read or contains a malformed line.
+   */
+  public static void forEachAd(Path file, AdConsumer consumer) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      int lineNumber = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        int urlStart = line.indexOf('\t') + 1;
+        int textStart = urlStart > 0 ? line.indexOf('\t', urlStart) + 1 : 0;
+        if (textStart == 0) {
+          throw new IOException(
+              file + ":" + lineNumber + ": expected category, redirect URL and text separated by tabs");
+        }
+        consumer.accept(
+            line.substring(0, urlStart - 1),
+            line.substring(urlStart, textStart - 1),
+            line.substring(textStart));
+      }
+    }
+  }
+}
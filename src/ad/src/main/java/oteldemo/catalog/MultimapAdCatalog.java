@@ -0,0 +1,57 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.catalog;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import oteldemo.Demo.Ad;
+
+/** {@link AdCatalog} keeping the ads as on-heap protobuf messages in a multimap. */
+public final class MultimapAdCatalog implements AdCatalog {
+
+  private final ImmutableListMultimap<String, Ad> adsMap;
+  private final ImmutableList<Ad> allAds;
+
+  public MultimapAdCatalog(ImmutableListMultimap<String, Ad> adsMap) {
+    this.adsMap = adsMap;
+    this.allAds = adsMap.values().asList();
+  }
+
+  /** Reads the ads of an inventory file, see {@link AdCatalogFile}, into a new catalog. */
+  public static MultimapAdCatalog load(Path file) throws IOException {
+    ImmutableListMultimap.Builder<String, Ad> ads = ImmutableListMultimap.builder();
+    AdCatalogFile.forEachAd(
+        file,
+        (category, redirectUrl, text) ->
+            ads.put(category, Ad.newBuilder().setRedirectUrl(redirectUrl).setText(text).build()));
+    return new MultimapAdCatalog(ads.build());
+  }
+
+  @Override
+  public List<Ad> getAdsByCategory(String category) {
+    return adsMap.get(category);
+  }
+
+  @Override
+  public Ad getRandomAd(Random random) {
+    return allAds.get(random.nextInt(allAds.size()));
+  }
+
+  @Override
+  public Set<String> getCategories() {
+    return adsMap.keySet();
+  }
+
+  @Override
+  public int size() {
+    return allAds.size();
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.catalog;
+
+import com.google.common.collect.Multimap;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import oteldemo.Demo.Ad;
+
+/**
+ * {@link AdCatalog} for large inventories that keeps the ads outside of the Java heap.
+ *
+ * <p>The text and redirect URL of every ad are stored as UTF-8 in a single direct buffer, the
+ * arena. Each ad is encoded as {@code [int textLength][text][int urlLength][url]} and identified by
+ * the offset of its record in the arena, so categories only hold a primitive {@code int[]} of
+ * offsets. {@link Ad} messages are materialized on lookup, only for the ads that are served.
+ */
+public final class OffHeapAdCatalog implements AdCatalog {
+
+  private final ByteBuffer arena;
+  private final Map<String, int[]> offsetsByCategory;
+  private final int[] allOffsets;
+
+  private OffHeapAdCatalog(
+      ByteBuffer arena, Map<String, int[]> offsetsByCategory, int[] allOffsets) {
+    this.arena = arena;
+    this.offsetsByCategory = offsetsByCategory;
+    this.allOffsets = allOffsets;
+  }
+
+  /** Copies all ads of the given multimap into a new off-heap catalog. */
+  public static OffHeapAdCatalog copyOf(Multimap<String, Ad> ads) {
+    Builder builder = builder();
+    ads.forEach(builder::put);
+    return builder.build();
+  }
+
+  /**
+   * Streams the ads of an inventory file, see {@link AdCatalogFile}, into a new off-heap catalog
+   * without materializing them on-heap.
+   */
+  public static OffHeapAdCatalog load(Path file) throws IOException {
+    Builder builder = builder();
+    AdCatalogFile.forEachAd(file, builder::put);
+    return builder.build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  @Override
+  public List<Ad> getAdsByCategory(String category) {
+    int[] offsets = offsetsByCategory.get(category);
+    if (offsets == null) {
+      return List.of();
+    }
+    Ad[] ads = new Ad[offsets.length];
+    for (int i = 0; i < offsets.length; i++) {
+      ads[i] = materialize(offsets[i]);
+    }
+    return Arrays.asList(ads);
+  }
+
+  @Override
+  public Ad getRandomAd(Random random) {
+    return materialize(allOffsets[random.nextInt(allOffsets.length)]);
+  }
+
+  @Override
+  public Set<String> getCategories() {
+    return offsetsByCategory.keySet();
+  }
+
+  @Override
+  public int size() {
+    return allOffsets.length;
+  }
+
+  /** @return the number of bytes the catalog occupies outside of the Java heap. */
+  public int getArenaSize() {
+    return arena.capacity();
+  }
+
+  private Ad materialize(int offset) {
+    // Only absolute reads are used, so the shared arena can be read from any thread.
+    int textLength = arena.getInt(offset);
+    int urlOffset = offset + Integer.BYTES + textLength;
+    int urlLength = arena.getInt(urlOffset);
+    return Ad.newBuilder()
+        .setTextBytes(ByteString.copyFrom(arena.slice(offset + Integer.BYTES, textLength)))
+        .setRedirectUrlBytes(ByteString.copyFrom(arena.slice(urlOffset + Integer.BYTES, urlLength)))
+        .build();
+  }
+
+  /** Builds an {@link OffHeapAdCatalog} by appending ads to a growing off-heap arena. */
+  public static final class Builder {
+
+    private static final int INITIAL_ARENA_CAPACITY = 64 * 1024;
+
+    private ByteBuffer arena = ByteBuffer.allocateDirect(INITIAL_ARENA_CAPACITY);
+    private final Map<String, IntList> offsetsByCategory = new LinkedHashMap<>();
+    private final IntList allOffsets = new IntList();
+
+    private Builder() {}
+
+    /** Appends an ad to the arena and adds it to the given category. */
+    public Builder put(String category, Ad ad) {
+      return put(category, ad.getRedirectUrl(), ad.getText());
+    }
+
+    /** Appends an ad to the arena and adds it to the given category. */
+    public Builder put(String category, String redirectUrl, String adText) {
+      byte[] text = adText.getBytes(StandardCharsets.UTF_8);
+      byte[] url = redirectUrl.getBytes(StandardCharsets.UTF_8);
+      int offset = arena.position();
+      ensureRemaining(2L * Integer.BYTES + text.length + url.length);
+      arena.putInt(text.length).put(text).putInt(url.length).put(url);
+
+      offsetsByCategory.computeIfAbsent(category, c -> new IntList()).add(offset);
+      allOffsets.add(offset);
+      return this;
+    }
+
+    public OffHeapAdCatalog build() {
+      if (allOffsets.size == 0) {
+        throw new IllegalStateException("an ad catalog needs at least one ad");
+      }
+      // Trim the arena to its used size and share it read-only.
+      ByteBuffer trimmed = ByteBuffer.allocateDirect(arena.position());
+      trimmed.put(arena.duplicate().flip()).flip();
+
+      Map<String, int[]> offsets = new HashMap<>(offsetsByCategory.size() * 2);
+      offsetsByCategory.forEach((category, list) -> offsets.put(category, list.toArray()));
+      return new OffHeapAdCatalog(
+          trimmed.asReadOnlyBuffer(), Map.copyOf(offsets), allOffsets.toArray());
+    }
+
+    private void ensureRemaining(long bytes) {
+      if (bytes <= arena.remaining()) {
+        return;
+      }
+      long required = arena.position() + bytes;
+      if (required > Integer.MAX_VALUE) {
+        throw new IllegalStateException("ad catalog exceeds the maximum arena size of 2 GiB");
+      }
+      int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(required, 2L * arena.capacity()));
+      ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+      grown.put(arena.flip());
+      arena = grown;
+    }
+  }
+
+  /** Growable list of primitive ints, used to collect ad offsets without boxing. */
+  private static final class IntList {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
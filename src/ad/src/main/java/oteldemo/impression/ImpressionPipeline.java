@@ -0,0 +1,220 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.impression;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import oteldemo.Demo.Ad;
+
+/**
+ * Records which ads were served to which session without blocking the request path.
+ *
+ * <p>Request threads {@link #publish} impressions into a bounded {@link ImpressionRingBuffer}; if
+ * it is full the impression is dropped and counted. A background thread drains the buffer, groups
+ * the events into batches of JSON lines, compresses them with gzip and writes them to an {@link
+ * ImpressionSink} once a batch is full or the flush interval has passed.
+ */
+public final class ImpressionPipeline {
+
+  private static final Logger logger = LogManager.getLogger(ImpressionPipeline.class);
+
+  // Bounds how often an idle consumer wakes up, and how far the buffer fills before it is drained.
+  private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+  private static final AttributeKey<String> resultKey =
+      AttributeKey.stringKey("app.ads.impressions.result");
+
+  private final ImpressionRingBuffer ringBuffer;
+  private final ImpressionSink sink;
+  private final int maxBatchSize;
+  private final long flushIntervalNanos;
+  private final Thread consumer;
+
+  private final LongAdder published = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder flushed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  // only accessed by the consumer thread
+  private final StringBuilder batch = new StringBuilder();
+  private int batchEvents;
+  private long batchStartNanos;
+
+  private volatile boolean running = true;
+
+  /**
+   * Creates the pipeline and starts its consumer thread.
+   *
+   * @param sink the sink batches are written to, closed when the pipeline is closed.
+   * @param capacity the number of impressions that can be buffered before new ones are dropped.
+   * @param maxBatchSize the number of impressions after which a batch is written.
+   * @param flushIntervalMillis the time after which a partial batch is written.
+   * @param meter the meter the pipeline metrics are registered with.
+   */
+  public ImpressionPipeline(
+      ImpressionSink sink, int capacity, int maxBatchSize, long flushIntervalMillis, Meter meter) {
+    this.ringBuffer = new ImpressionRingBuffer(capacity);
+    this.sink = sink;
+    this.maxBatchSize = maxBatchSize;
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+
+    // Counted in LongAdders and exported asynchronously to keep instrument calls off the hot path.
+    meter
+        .counterBuilder("app.ads.impressions")
+        .setDescription("Counts ad impressions by what happened to them in the impression pipeline")
+        .buildWithCallback(
+            measurement -> {
+              measurement.record(published.sum(), Attributes.of(resultKey, "published"));
+              measurement.record(dropped.sum(), Attributes.of(resultKey, "dropped"));
+              measurement.record(flushed.sum(), Attributes.of(resultKey, "flushed"));
+              measurement.record(failed.sum(), Attributes.of(resultKey, "failed"));
+            });
+    meter
+        .gaugeBuilder("app.ads.impressions.buffered")
+        .setDescription("Number of ad impressions waiting in the impression buffer")
+        .ofLongs()
+        .buildWithCallback(measurement -> measurement.record(ringBuffer.size()));
+
+    this.consumer = new Thread(this::consume, "ad-impression-pipeline");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  /**
+   * Publishes the impression of a served ad response. Never blocks; the impression is dropped if
+   * the buffer is full.
+   *
+   * @param sessionId the session the ads were served to, may be {@code null}.
+   * @param requestType the type of the ad request.
+   * @param ads the ads that were served.
+   * @return {@code false} if the impression was dropped.
+   */
+  public boolean publish(String sessionId, String requestType, List<Ad> ads) {
+    if (ringBuffer.tryPublish(sessionId, requestType, ads)) {
+      published.increment();
+      return true;
+    }
+    dropped.increment();
+    return false;
+  }
+
+  private void consume() {
+    while (running) {
+      int drained = ringBuffer.drain(this::append, maxBatchSize - batchEvents);
+      if (batchEvents >= maxBatchSize
+          || (batchEvents > 0 && System.nanoTime() - batchStartNanos >= flushIntervalNanos)) {
+        flush();
+      }
+      if (drained == 0) {
+        long parkNanos = MAX_IDLE_PARK_NANOS;
+        if (batchEvents > 0) {
+          // wake up in time to flush the partial batch
+          long untilFlush = batchStartNanos + flushIntervalNanos - System.nanoTime();
+          parkNanos = Math.max(0, Math.min(parkNanos, untilFlush));
+        }
+        LockSupport.parkNanos(parkNanos);
+      }
+    }
+    // write everything that was published before close()
+    while (ringBuffer.drain(this::append, maxBatchSize - batchEvents) > 0) {
+      flush();
+    }
+    flush();
+    // the sink is only ever used from this thread, so it is closed here as well
+    try {
+      sink.close();
+    } catch (IOException e) {
+      logger.warn("Failed to close the ad impression sink", e);
+    }
+  }
+
+  private void append(ImpressionRingBuffer.Event event) {
+    if (batchEvents == 0) {
+      batchStartNanos = System.nanoTime();
+    }
+    batch.append("{\"timestamp\":").append(event.timestampMillis).append(",\"session_id\":");
+    if (event.sessionId == null) {
+      batch.append("null");
+    } else {
+      appendJsonString(event.sessionId);
+    }
+    batch.append(",\"request_type\":\"").append(event.requestType).append("\",\"ads\":[");
+    for (int i = 0; i < event.adCount; i++) {
+      if (i > 0) {
+        batch.append(',');
+      }
+      appendJsonString(event.adRedirectUrls[i].toStringUtf8());
+    }
+    batch.append("]}\n");
+    batchEvents++;
+  }
+
+  private void appendJsonString(String value) {
+    batch.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        batch.append('\\').append(c);
+      } else if (c < 0x20) {
+        batch.append(String.format("\\u%04x", (int) c));
+      } else {
+        batch.append(c);
+      }
+    }
+    batch.append('"');
+  }
+
+  private void flush() {
+    if (batchEvents == 0) {
+      return;
+    }
+    try {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(batch.length() / 4);
+      try (Writer writer =
+          new OutputStreamWriter(new GZIPOutputStream(compressed), StandardCharsets.UTF_8)) {
+        writer.append(batch);
+      }
+      sink.write(compressed.toByteArray(), batchEvents);
+      flushed.add(batchEvents);
+    } catch (IOException | RuntimeException e) {
+      failed.add(batchEvents);
+      logger.warn("Failed to write a batch of " + batchEvents + " ad impressions", e);
+    }
+    batch.setLength(0);
+    batchEvents = 0;
+  }
+
+  /**
+   * Stops the consumer thread, which writes all buffered impressions and then closes the sink.
+   *
+   * @param timeoutMillis the maximum time to wait for the buffered impressions to be written.
+   */
+  public void close(long timeoutMillis) {
+    running = false;
+    LockSupport.unpark(consumer);
+    try {
+      consumer.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (consumer.isAlive()) {
+      logger.warn(
+          "Ad impressions were not written within " + timeoutMillis + " ms, continuing shutdown");
+    }
+  }
+}
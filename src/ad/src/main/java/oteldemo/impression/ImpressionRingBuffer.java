@@ -0,0 +1,129 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.impression;
+
+import com.google.protobuf.ByteString;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import oteldemo.Demo.Ad;
+
+/**
+ * Bounded, lock-free ring buffer of preallocated impression events, written by any number of
+ * request threads and read by a single consumer thread.
+ *
+ * <p>Every slot carries a sequence number that tells producers and the consumer whose turn it is:
+ * a producer may fill slot {@code i} for position {@code p} once its sequence equals {@code p}, the
+ * consumer may read it once the sequence equals {@code p + 1}, and hands it back for the next lap
+ * by setting it to {@code p + capacity}. Publishing never blocks; when the buffer is full the event
+ * is rejected.
+ */
+final class ImpressionRingBuffer {
+
+  /** Ads beyond this count are not recorded, so that every event has a fixed size. */
+  static final int MAX_ADS_PER_EVENT = 8;
+
+  /** A preallocated slot. Fields are only valid while the consumer holds the slot. */
+  static final class Event {
+    long timestampMillis;
+    String sessionId;
+    String requestType;
+    int adCount;
+    // kept as UTF-8 bytes, decoded by the consumer
+    final ByteString[] adRedirectUrls = new ByteString[MAX_ADS_PER_EVENT];
+  }
+
+  private final Event[] events;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong producerPosition = new AtomicLong();
+  // only written by the consumer thread
+  private long consumerPosition;
+
+  /** @param capacity the number of slots, rounded up to the next power of two. */
+  ImpressionRingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    events = new Event[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      events[i] = new Event();
+      sequences.set(i, i);
+    }
+    mask = size - 1;
+  }
+
+  /**
+   * Claims a slot and copies the impression into it.
+   *
+   * @return {@code false} if the buffer is full and the impression was dropped.
+   */
+  boolean tryPublish(String sessionId, String requestType, List<Ad> ads) {
+    long position = producerPosition.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.getAcquire(index) - position;
+      if (difference == 0) {
+        long witness = producerPosition.compareAndExchange(position, position + 1);
+        if (witness == position) {
+          break;
+        }
+        position = witness;
+      } else if (difference < 0) {
+        // the consumer has not released this slot from the previous lap yet
+        return false;
+      } else {
+        position = producerPosition.get();
+      }
+    }
+
+    Event event = events[index];
+    event.timestampMillis = System.currentTimeMillis();
+    event.sessionId = sessionId;
+    event.requestType = requestType;
+    int adCount = Math.min(ads.size(), MAX_ADS_PER_EVENT);
+    for (int i = 0; i < adCount; i++) {
+      event.adRedirectUrls[i] = ads.get(i).getRedirectUrlBytes();
+    }
+    event.adCount = adCount;
+    sequences.setRelease(index, position + 1);
+    return true;
+  }
+
+  /**
+   * Hands up to {@code maxEvents} published events to {@code consumer}, in publish order. Must
+   * only be called from the consumer thread.
+   *
+   * @return the number of events consumed.
+   */
+  int drain(Consumer<Event> consumer, int maxEvents) {
+    int drained = 0;
+    while (drained < maxEvents) {
+      int index = (int) consumerPosition & mask;
+      if (sequences.getAcquire(index) != consumerPosition + 1) {
+        break;
+      }
+      Event event = events[index];
+      consumer.accept(event);
+      event.sessionId = null;
+      Arrays.fill(event.adRedirectUrls, 0, event.adCount, null);
+      sequences.setRelease(index, consumerPosition + events.length);
+      consumerPosition++;
+      drained++;
+    }
+    return drained;
+  }
+
+  /**
+   * @return the number of published events that have not been drained yet. Only approximate when
+   *     called from a thread other than the consumer.
+   */
+  long size() {
+    return Math.max(0, producerPosition.get() - consumerPosition);
+  }
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.impression;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** Destination for batches of ad impression events written by the {@link ImpressionPipeline}. */
+public interface ImpressionSink extends Closeable {
+
+  /**
+   * Writes one batch of impression events.
+   *
+   * @param batch the gzip-compressed batch, holding one JSON document per line.
+   * @param eventCount the number of events in the batch.
+   * @throws IOException if the batch could not be written.
+   */
+  void write(byte[] batch, int eventCount) throws IOException;
+}
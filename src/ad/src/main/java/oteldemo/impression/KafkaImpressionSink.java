@@ -0,0 +1,55 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.impression;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+
+/** {@link ImpressionSink} that publishes every batch as one record to a Kafka topic. */
+public final class KafkaImpressionSink implements ImpressionSink {
+
+  private final KafkaProducer<byte[], byte[]> producer;
+  private final String topic;
+
+  /**
+   * @param bootstrapServers the Kafka bootstrap servers, e.g. {@code kafka:9092}.
+   * @param topic the topic the batches are published to.
+   */
+  public KafkaImpressionSink(String bootstrapServers, String topic) {
+    Properties properties = new Properties();
+    properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+    properties.put(
+        ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+    // batches are already gzip-compressed by the pipeline
+    properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "none");
+    this.producer = new KafkaProducer<>(properties);
+    this.topic = topic;
+  }
+
+  @Override
+  public void write(byte[] batch, int eventCount) throws IOException {
+    try {
+      producer.send(new ProducerRecord<>(topic, batch)).get();
+    } catch (ExecutionException e) {
+      throw new IOException("failed to publish impression batch to " + topic, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while publishing impression batch to " + topic, e);
+    }
+  }
+
+  @Override
+  public void close() {
+    producer.close(Duration.ofSeconds(5));
+  }
+}
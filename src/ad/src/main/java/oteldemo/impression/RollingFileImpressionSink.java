@@ -0,0 +1,91 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.impression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.stream.Stream;
+
+/**
+ * {@link ImpressionSink} that appends batches to gzip files in a local directory. Every batch is a
+ * complete gzip member, so each file can be read as one gzip stream. A new file is started once the
+ * current one exceeds the configured size, and the oldest files are deleted beyond the configured
+ * count.
+ */
+public final class RollingFileImpressionSink implements ImpressionSink {
+
+  private static final String FILE_PREFIX = "impressions-";
+  private static final String FILE_SUFFIX = ".jsonl.gz";
+
+  private final Path directory;
+  private final long maxFileBytes;
+  private final int maxFiles;
+  private final Deque<Path> files = new ArrayDeque<>();
+
+  private OutputStream out;
+  private long currentFileBytes;
+  private long fileSequence;
+
+  /**
+   * @param directory the directory the impression files are written to, created if missing.
+   * @param maxFileBytes the size after which a new file is started.
+   * @param maxFiles the number of files to keep.
+   * @throws IOException if the directory cannot be created or listed.
+   */
+  public RollingFileImpressionSink(Path directory, long maxFileBytes, int maxFiles)
+      throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.maxFileBytes = maxFileBytes;
+    this.maxFiles = maxFiles;
+    // pick up files of previous runs, so that they count towards maxFiles
+    try (Stream<Path> existing = Files.list(directory)) {
+      existing
+          .filter(path -> path.getFileName().toString().startsWith(FILE_PREFIX))
+          .sorted()
+          .forEach(files::addLast);
+    }
+  }
+
+  @Override
+  public void write(byte[] batch, int eventCount) throws IOException {
+    if (out == null || currentFileBytes >= maxFileBytes) {
+      roll();
+    }
+    out.write(batch);
+    out.flush();
+    currentFileBytes += batch.length;
+  }
+
+  private void roll() throws IOException {
+    if (out != null) {
+      out.close();
+    }
+    // the timestamp keeps the files of consecutive runs in lexicographic order
+    Path file =
+        directory.resolve(
+            String.format(
+                "%s%d-%04d%s",
+                FILE_PREFIX, System.currentTimeMillis(), fileSequence++ % 10000, FILE_SUFFIX));
+    out = Files.newOutputStream(file);
+    currentFileBytes = 0;
+    files.addLast(file);
+    while (files.size() > maxFiles) {
+      Files.deleteIfExists(files.removeFirst());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+}
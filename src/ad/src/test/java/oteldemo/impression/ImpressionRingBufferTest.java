@@ -0,0 +1,184 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package oteldemo.impression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import oteldemo.Demo.Ad;
+
+class ImpressionRingBufferTest {
+
+  private static final int PRODUCERS = 4;
+  private static final List<Ad> ADS =
+      List.of(Ad.newBuilder().setRedirectUrl("/product/66VCHSJNUP").setText("Telescope").build());
+
+  @Test
+  void dropsOnlyWhenFullAndReusesDrainedSlots() {
+    ImpressionRingBuffer ringBuffer = new ImpressionRingBuffer(8);
+    for (int lap = 0; lap < 3; lap++) {
+      for (int i = 0; i < 8; i++) {
+        assertTrue(ringBuffer.tryPublish("session-" + i, "TARGETED", ADS), "slot " + i);
+      }
+      assertFalse(ringBuffer.tryPublish("overflow", "TARGETED", ADS));
+
+      List<String> drained = new ArrayList<>();
+      assertEquals(8, ringBuffer.drain(event -> drained.add(event.sessionId), Integer.MAX_VALUE));
+      for (int i = 0; i < 8; i++) {
+        assertEquals("session-" + i, drained.get(i));
+      }
+      assertEquals(0, ringBuffer.size());
+    }
+  }
+
+  @Test
+  void copiesAtMostMaxAdsPerEvent() {
+    ImpressionRingBuffer ringBuffer = new ImpressionRingBuffer(2);
+    List<Ad> ads = new ArrayList<>();
+    for (int i = 0; i < ImpressionRingBuffer.MAX_ADS_PER_EVENT + 2; i++) {
+      ads.add(Ad.newBuilder().setRedirectUrl("/product/" + i).build());
+    }
+    assertTrue(ringBuffer.tryPublish(null, "NOT_TARGETED", ads));
+
+    List<String> urls = new ArrayList<>();
+    ringBuffer.drain(
+        event -> {
+          for (int i = 0; i < event.adCount; i++) {
+            urls.add(event.adRedirectUrls[i].toStringUtf8());
+          }
+        },
+        1);
+    assertEquals(ImpressionRingBuffer.MAX_ADS_PER_EVENT, urls.size());
+    assertEquals("/product/0", urls.get(0));
+  }
+
+  @Test
+  void concurrentProducersLoseAndDuplicateNothing() throws Exception {
+    int eventsPerProducer = 100_000;
+    ImpressionRingBuffer ringBuffer = new ImpressionRingBuffer(64);
+    ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS);
+    AtomicBoolean producing = new AtomicBoolean(true);
+    try {
+      List<Future<?>> producers = new ArrayList<>();
+      for (int p = 0; p < PRODUCERS; p++) {
+        String producer = "producer-" + p;
+        producers.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < eventsPerProducer; i++) {
+                    // retry dropped events, so that every event is published exactly once;
+                    // yield rather than spin, so that the test also passes on a single core
+                    while (!ringBuffer.tryPublish(producer + "/" + i, "TARGETED", ADS)) {
+                      Thread.yield();
+                    }
+                  }
+                }));
+      }
+
+      int[] nextByProducer = new int[PRODUCERS];
+      Set<String> seen = new HashSet<>();
+      List<String> errors = new ArrayList<>();
+      Thread consumer =
+          new Thread(
+              () -> {
+                while (producing.get() || ringBuffer.size() > 0) {
+                  int drained =
+                      ringBuffer.drain(
+                          event -> {
+                            if (!seen.add(event.sessionId)) {
+                              errors.add("duplicate " + event.sessionId);
+                            }
+                            String[] parts = event.sessionId.split("/");
+                            int producer =
+                                Integer.parseInt(parts[0].substring("producer-".length()));
+                            int sequence = Integer.parseInt(parts[1]);
+                            // each producer publishes in order, so its events are drained in order
+                            if (sequence != nextByProducer[producer]++) {
+                              errors.add("out of order " + event.sessionId);
+                            }
+                            if (event.adCount != 1
+                                || !"/product/66VCHSJNUP"
+                                    .equals(event.adRedirectUrls[0].toStringUtf8())) {
+                              errors.add("corrupt event " + event.sessionId);
+                            }
+                          },
+                          128);
+                  if (drained == 0) {
+                    Thread.yield();
+                  }
+                }
+              });
+      consumer.start();
+
+      for (Future<?> producer : producers) {
+        producer.get(1, TimeUnit.MINUTES);
+      }
+      producing.set(false);
+      consumer.join(TimeUnit.MINUTES.toMillis(1));
+
+      assertFalse(consumer.isAlive());
+      assertEquals(List.of(), errors);
+      assertEquals(PRODUCERS * eventsPerProducer, seen.size());
+    } finally {
+      producing.set(false);
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void concurrentProducersFillExactlyTheCapacity() throws Exception {
+    int capacity = 64;
+    int attemptsPerProducer = 1_000;
+    ImpressionRingBuffer ringBuffer = new ImpressionRingBuffer(capacity);
+    ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      Set<String> accepted = ConcurrentHashMap.newKeySet();
+      List<Future<?>> producers = new ArrayList<>();
+      for (int p = 0; p < PRODUCERS; p++) {
+        String producer = "producer-" + p;
+        producers.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  for (int i = 0; i < attemptsPerProducer; i++) {
+                    String sessionId = producer + "/" + i;
+                    if (ringBuffer.tryPublish(sessionId, "TARGETED", ADS)) {
+                      accepted.add(sessionId);
+                    }
+                  }
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (Future<?> producer : producers) {
+        producer.get(1, TimeUnit.MINUTES);
+      }
+
+      // nothing is drained, so exactly the first `capacity` publishes succeed
+      assertEquals(capacity, accepted.size());
+      Set<String> drained = new HashSet<>();
+      assertEquals(
+          capacity, ringBuffer.drain(event -> drained.add(event.sessionId), Integer.MAX_VALUE));
+      assertEquals(accepted, drained);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}